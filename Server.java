@@ -4,27 +4,95 @@ import java.io.FileOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
 import java.util.Set;
 import java.util.Map;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandling {
 	public static final Object lock = new Object();
 	public static final long timeout = 6000;
 	public static final String logFilePath = "log.txt";
+	//the image is sent to the UserNodes in chunks of chunkSize bytes, with at most window chunks unacknowledged per UserNode
+	//both can be set with -Dserver.chunkSize and -Dserver.window
+	public static final int chunkSize = Math.max(1, Integer.getInteger("server.chunkSize", 64 * 1024));
+	public static final int window = Math.max(1, Integer.getInteger("server.window", 4));
+	//the unacknowledged chunks are sent again if a UserNode acknowledges nothing new for this long
+	public static final long resendTimeout = 300;
 	public static ProjectLib PL;
+	//records what happens to every collage, does nothing unless -Dtrace.dir is set
+	public static Tracer tracer = new Tracer("Server", null);
 	//the counter that identifies how many potantial collages have been proposed
 	public static int cnt = 0;
 	//a flag that indicates the Server is currently in recovery. If set, will block all messages 
-	public static boolean inRecovery = true;
+	public static volatile boolean inRecovery = true;
 	//maps the ith proposal collage request to its correponding UserNode vote map
 	public static ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>> voteMap;
 	//maps the reference number(a potential collage) to its commit/abort decision
 	public static ConcurrentHashMap<Integer, String> decisionMap;
+	//maps the ith proposal collage request to how many image chunks each UserNode has acknowledged
+	public static ConcurrentHashMap<Integer, ConcurrentHashMap<String, AtomicInteger>> chunkAckMap;
+	//how many collage files the background recovery has to re-save, and how many it has finished
+	public static final AtomicInteger resaveTotal = new AtomicInteger(0);
+	public static final AtomicInteger resaveDone = new AtomicInteger(0);
+
+	/*
+	 * A COMMIT record found during recovery whose collage may need to be re-saved.
+	 * Only the position of the image inside the log is kept, the bytes are read by the worker.
+	 */
+	public static class ResaveTask implements Runnable {
+		public final String collageName;
+		public final long imgOffset;
+		public final int imgLen;
+
+		public ResaveTask(String collageName, long imgOffset, int imgLen) {
+			this.collageName = collageName;
+			this.imgOffset = imgOffset;
+			this.imgLen = imgLen;
+		}
+
+		public void run() {
+			try {
+				File f = new File(collageName);
+				//check if the collage is already saved
+				if (!f.exists()) {
+					//if not, read the image out of the log and save it now
+					byte[] img = new byte[imgLen];
+					RandomAccessFile raf = new RandomAccessFile(logFilePath, "r");
+					raf.seek(imgOffset);
+					raf.readFully(img);
+					raf.close();
+					saveCollage(collageName, img);
+				}
+			} catch (IOException e) {
+				System.err.println("IOException");
+			}
+			//progress can be polled with getRecoveryProgress(), only report the end
+			if (resaveDone.incrementAndGet() == resaveTotal.get()) {
+				System.err.println("recovery: " + getRecoveryProgress());
+			}
+		}
+	}
+
+	//write a collage to a temp file first, so a failure halfway never leaves a partial collage behind
+	public static void saveCollage(String filename, byte[] img) throws IOException {
+		File tmp = new File(filename + ".tmp");
+		FileOutputStream outputStream = new FileOutputStream(tmp);
+		outputStream.write(img);
+		outputStream.close();
+		Files.move(tmp.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
 	
 	/*
 	 * Construct a message to send to the UserNodes.
@@ -37,7 +105,6 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 	 * 
 	 * 	returns: the constructed message has the format
 	 * 		
-	 * 		totalContentLen(4bytes)PREPARE,14,file:Names:carnival:,imageBytes92345930530..
 	 * 		totalContentLen(4bytes)COMMIT,14, , 
 	 * 		totalContentLen(4bytes)ABORT,14, ,
 	 * 		totalContentLen(4bytes)INPROGRESS,14, ,
@@ -45,15 +112,52 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 	 * 	where totalContentLen(4bytes) includes itself and the last ,
 	*/
 	public ProjectLib.Message getMsg(String dest, String type, int refNum, String filenames, byte[] img) {
+		return getMsg(dest, type, refNum, filenames+",", img, 0, img.length);
+	}
+
+	/*
+	 * Construct a PREPARE message. The image itself is not in it, it follows in IMGCHUNK messages.
+	 * 
+	 * 	participants: all the UserNodes involved in the collage, so that a UserNode can ask the others 
+	 * 				  for the decision when the Server can't be reached
+	 * 	imgLen: the length of the image
+	 * 
+	 * 	returns: the constructed message has the format
+	 * 
+	 * 		totalContentLen(4bytes)PREPARE,14,file:Names:carnival:,a:b:c:,92345,
+	 */
+	public ProjectLib.Message getPrepareMsg(String dest, int refNum, String filenames, String participants, int imgLen) {
+		byte[] placeHolder = {};
+		return getMsg(dest, "PREPARE", refNum, filenames+","+participants+","+imgLen+",", placeHolder, 0, 0);
+	}
+
+	/*
+	 * Construct a message carrying one chunk of the image, without copying the image first.
+	 * 
+	 * 	index: which chunk it is
+	 * 	img, offset, len: where the chunk is in the image
+	 * 
+	 * 	returns: the constructed message has the format
+	 * 
+	 * 		totalContentLen(4bytes)IMGCHUNK,14,3,196608,92345,imageBytes92345930530..
+	 * 
+	 * 	where 196608 is the offset of the chunk and 92345 the length of the whole image
+	 */
+	public ProjectLib.Message getChunkMsg(String dest, int refNum, int index, byte[] img, int offset, int len) {
+		return getMsg(dest, "IMGCHUNK", refNum, index+","+offset+","+img.length+",", img, offset, len);
+	}
+
+	//the message layout shared by all of the above, fields is everything after the refNum, including the last ,
+	public ProjectLib.Message getMsg(String dest, String type, int refNum, String fields, byte[] img, int offset, int len) {
 		//construct necessary component of the message
 		byte[] header = (type+","+refNum+",").getBytes();
 		int headerLen = header.length;
-		byte[] filenameByte = (filenames+",").getBytes();
+		byte[] filenameByte = fields.getBytes();
 		int filenameByteLen = filenameByte.length;
 		int totalContentLen = headerLen + filenameByteLen + 4;
 		
 		//allocate the buffer
-		int totalLen = totalContentLen + img.length;
+		int totalLen = totalContentLen + len;
 		byte[] bstream = new byte[totalLen];
 
 		//copy contents into the buffer
@@ -61,7 +165,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 		System.arraycopy(totalContentLenBytes, 0, bstream, 0, 4);
 		System.arraycopy(header, 0, bstream, 4, headerLen);
 		System.arraycopy(filenameByte, 0, bstream, headerLen+4, filenameByteLen);
-		System.arraycopy(img, 0, bstream, totalContentLen, img.length);
+		System.arraycopy(img, offset, bstream, totalContentLen, len);
 		
 		//construct the message object
 		ProjectLib.Message msg = new ProjectLib.Message( dest, bstream );
@@ -110,12 +214,17 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 	public void startCommit( String filename, byte[] img, String[] sources ) {
 		int sourcesLen = sources.length;
 		int refNum;
+
+		while (inRecovery) {
+			//wait until cnt has been recovered
+		}
 		
 		//need the lock to ensure each proposal collage gets a unique reference number
 		synchronized (lock) {
 			refNum = cnt;
 			cnt += 1;
 		}
+		tracer.record(refNum, Tracer.Event.COLLAGE_START, filename);
 
 		//maps the UserNode to its corresponding files involved in the current proposal collage
 		ConcurrentHashMap<String, String> userFilesMap = new ConcurrentHashMap<>();
@@ -136,19 +245,94 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 		ConcurrentHashMap<String, String> responseMap = new ConcurrentHashMap<>();
 		voteMap.put(refNum, responseMap);
 
+		//every participant gets to know the others, in case it needs their help to find out the decision
+		StringBuilder participants = new StringBuilder();
+		for (String key : userFilesMap.keySet()) {
+			participants.append(key).append(":");
+		}
+
+		//maps the UserNode to how many image chunks it has acknowledged
+		ConcurrentHashMap<String, AtomicInteger> ackedMap = new ConcurrentHashMap<>();
+		for (String key : userFilesMap.keySet()) {
+			ackedMap.put(key, new AtomicInteger(0));
+		}
+		chunkAckMap.put(refNum, ackedMap);
+
+		//record the current time, the image transfer only times out if it stops making progress
+		long startTime = System.currentTimeMillis();
+
 		//send messages to UserNode ask them to prepare
 		for (String key : userFilesMap.keySet()) {
 			String filenames = userFilesMap.get(key);
-			ProjectLib.Message msg = getMsg(key, "PREPARE", refNum, filenames, img);
+			ProjectLib.Message msg = getPrepareMsg(key, refNum, filenames, participants.toString(), img.length);
 			PL.sendMessage( msg );
+			tracer.record(refNum, Tracer.Event.PREPARE_SENT, key);
 		}
 
-		//record the current time to later timeout
-		long startTime = System.currentTimeMillis();
+		/*
+		 * send the image chunk by chunk, never more than window chunks unacknowledged per UserNode.
+		 * a UserNode acknowledges how many chunks it has without a gap, so if that doesn't grow
+		 * for resendTimeout, everything after it is sent again. if it doesn't grow for timeout,
+		 * the UserNode is considered unreachable and the collage is aborted.
+		 */
+		int chunkNum = (img.length + chunkSize - 1) / chunkSize;
+		String[] users = userFilesMap.keySet().toArray(new String[0]);
+		//for each UserNode: the next chunk to send, the last acknowledged count, when it last grew, and when chunks were last resent
+		int[] sent = new int[users.length];
+		int[] acked = new int[users.length];
+		long[] ackTime = new long[users.length];
+		long[] progressTime = new long[users.length];
+		boolean[] done = new boolean[users.length];
+		Arrays.fill(ackTime, startTime);
+		Arrays.fill(progressTime, startTime);
+		int remaining = users.length;
+		//the votes are waited for until timeout after the last UserNode got the whole image
+		long voteDeadline = startTime + timeout;
+		boolean stalled = false;
+		while (remaining > 0 && !stalled) {
+			long noW = System.currentTimeMillis();
+			for (int i = 0; i < users.length; i++) {
+				if (done[i]) {
+					continue;
+				}
+				String key = users[i];
+				int ack = ackedMap.get(key).get();
+				//no need to send the rest if all acknowledged, or if the UserNode has already voted (NO)
+				if (ack >= chunkNum || responseMap.containsKey(key)) {
+					done[i] = true;
+					remaining--;
+					voteDeadline = Math.max(voteDeadline, noW + timeout);
+					continue;
+				}
+				if (ack > acked[i]) {
+					acked[i] = ack;
+					ackTime[i] = noW;
+					progressTime[i] = noW;
+				} else if (noW - ackTime[i] > timeout) {
+					//no progress at all for too long, no point waiting for the votes
+					stalled = true;
+					break;
+				} else if (sent[i] > ack && noW - progressTime[i] > resendTimeout) {
+					//some chunk or ack got lost, go back to the first missing chunk
+					sent[i] = ack;
+					progressTime[i] = noW;
+				}
+				while (sent[i] < chunkNum && sent[i] - ack < window) {
+					int offset = sent[i] * chunkSize;
+					ProjectLib.Message msg = getChunkMsg(key, refNum, sent[i], img, offset, Math.min(chunkSize, img.length - offset));
+					PL.sendMessage( msg );
+					sent[i]++;
+				}
+			}
+		}
+		chunkAckMap.remove(refNum);
+		if (stalled) {
+			voteDeadline = System.currentTimeMillis();
+		}
 
 		int userNum = userFilesMap.size();
 		//wait until either timeout of get all the responses from UserNodes involved
-		while (responseMap.size() < userNum && System.currentTimeMillis() - startTime < timeout) {
+		while (responseMap.size() < userNum && System.currentTimeMillis() < voteDeadline) {
 			//do nothing, wait unitl either get all the responses or timeout;
 		}
 
@@ -158,6 +342,9 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 		//didn't get all the responses, timeout
 		if (responseMap.size() < userNum) {
 			result = false;
+			tracer.record(refNum, Tracer.Event.VOTE_TIMEOUT);
+		} else {
+			tracer.record(refNum, Tracer.Event.VOTES_COLLECTED);
 		}
 		
 		//get all the responses, but some said NO
@@ -177,6 +364,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 				fos.write(bstream);
 				fos.close();
 				PL.fsync();
+				tracer.record(refNum, Tracer.Event.DECISION_LOGGED, "COMMIT");
 				
 				//write the decision to decisionMap
 				decisionMap.put(refNum, "COMMIT");
@@ -195,6 +383,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 				fos.write(bstream);
 				fos.close();
 				PL.fsync();
+				tracer.record(refNum, Tracer.Event.DECISION_LOGGED, "ABORT");
 
 				//write the decision to decisionMap
 				decisionMap.put(refNum, "ABORT");
@@ -213,9 +402,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 	public void commiT(String filename, byte[] img, ConcurrentHashMap<String, String> userFilesMap, int refNum) {
 		//write the file into local directory
 		try {
-			FileOutputStream outputStream = new FileOutputStream(filename);
-			outputStream.write(img);
-      		outputStream.close();
+			saveCollage(filename, img);
 		} catch (IOException e) {
 			System.err.println("IOException");
 		}
@@ -226,6 +413,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 			ProjectLib.Message msg = getMsg(user, "COMMIT", refNum, " ", placeHolder);
 			PL.sendMessage(msg);
 		}
+		tracer.record(refNum, Tracer.Event.DECISION_SENT, "COMMIT");
 	}
 
 	//abort a collage, and broadcast the results
@@ -236,6 +424,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 			ProjectLib.Message msg = getMsg(user, "ABORT", refNum, " ", placeHolder);
 			PL.sendMessage(msg);
 		}
+		tracer.record(refNum, Tracer.Event.DECISION_SENT, "ABORT");
 	}
 
 	/*
@@ -244,6 +433,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 	 * 		RESPONSE,14,YES
 	 * 		RESPONSE,14,NO
 	 * 		ASK,14, 
+	 * 		CHUNKACK,14,3
 	 */
 
 	public boolean deliverMessage( ProjectLib.Message msg ) {
@@ -264,6 +454,15 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 			if (responseMap != null) {
 				//put response in if it's not timeout and the map is still there
 				responseMap.put(key,answer);
+				tracer.record(Integer.parseInt(refNum), Tracer.Event.VOTE_RECEIVED, key);
+			}
+		} else if (info[0].equals("CHUNKACK")) {
+			//the UserNode tells how many chunks it has got without a gap, so a lost ack is covered by the next one
+			ConcurrentHashMap<String, AtomicInteger> ackedMap = chunkAckMap.get(Integer.parseInt(info[1]));
+			//the ackedMap may have already been deleted, once the whole image is acknowledged or due to timeout
+			if (ackedMap != null && ackedMap.containsKey(source)) {
+				int acked = Integer.parseInt(info[2]);
+				ackedMap.get(source).accumulateAndGet(acked, Math::max);
 			}
 		} else if (info[0].equals("ASK")) {
 			byte[] placeHolder = {0x00};
@@ -302,8 +501,19 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 		return true;
 	}	
 
-	//the recovery code
-	public static void doRecovery() {
+	//the progress of re-saving the commited collages in the background
+	public static String getRecoveryProgress() {
+		return "re-saved " + resaveDone.get() + "/" + resaveTotal.get() + " collages";
+	}
+
+	/*
+	 * The recovery code, first pass. Only the record headers are read, the image bytes are skipped,
+	 * so the time it takes depends on the number of records, not on the size of the images.
+	 * 
+	 * 	returns: the COMMIT records whose collage may need to be re-saved, see resaveCollages()
+	 */
+	public static List<ResaveTask> doRecovery() {
+		List<ResaveTask> tasks = new ArrayList<>();
 		File file = new File(logFilePath);
 		if (!file.exists()) {
 			//no need to recover, just create a log.txt file
@@ -314,76 +524,65 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 				fos.write(initialLog.getBytes());
 				fos.close();
 				PL.fsync();
-				return;
+				return tasks;
 			} catch (IOException e) {
 				System.err.println("IOException");
 			}
 		}
 		if (file.length() == 0) {
 			//nothing in the log, no need to recover.
-			return;
+			return tasks;
 		}
 
-		//read the log file into fileBytes
-		byte[] fileBytes = {0x00};
+		//recover the decision map, and remember where the image of every COMMIT record is
+		Set<String> scheduled = new HashSet<>();
 		try {
-			FileInputStream fis = new FileInputStream(logFilePath);
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024];
-			int bytesRead;
-			while ((bytesRead = fis.read(buffer)) != -1) {
-				bos.write(buffer, 0, bytesRead);
-			}
-			fileBytes = bos.toByteArray();
-			fis.close();
-			bos.close();
-		} catch (IOException e) {
-			System.err.println("IOException");
-		}
+			RandomAccessFile raf = new RandomAccessFile(logFilePath, "rw");
+			long fileLen = raf.length();
+			//records how many bytes have been read. read until the end of the file
+			long counter = 0;
+
+			while (counter + 8 <= fileLen) {
+				//get the header of a piece of log
+				raf.seek(counter);
+				int totalLen = raf.readInt();
+				int totalContentLen = raf.readInt();
+				if (totalLen < 8 || totalContentLen < 5 || totalContentLen + 4 > totalLen || counter + totalLen > fileLen) {
+					//the last record was not completely written before the failure
+					break;
+				}
+				byte[] contentBytes = new byte[totalContentLen-5];
+				raf.readFully(contentBytes);
 
-		//recover the decision map, and commit (if not already commited) all the collages.
-		
-		//records how many bytes have been read. read until the end of the file
-		int counter = 0;
-		
-		while (counter < fileBytes.length) {
-			//get a piece of log
-			byte[] firstFour = Arrays.copyOfRange(fileBytes, counter, counter+4);
-			int totalLen = ByteBuffer.wrap(firstFour).getInt();
-			byte[] four2eight = Arrays.copyOfRange(fileBytes, counter+4, counter+8);
-			int totalContentLen = ByteBuffer.wrap(four2eight).getInt();
-			byte[] contentBytes = Arrays.copyOfRange(fileBytes, counter+8, counter+4+totalContentLen-1);
-
-			String contentString = new String(contentBytes);
-			String[] contents = contentString.split(":");
-			
-			//parse the log information
-			int refNum = Integer.parseInt(contents[0]);
-			String decision = contents[1];
-			String collageName = contents[2];
-			byte[] img = {0x00};
-			//need img only if it's a COMMIT message
-			if (decision.equals("COMMIT")) {
-				img = Arrays.copyOfRange(fileBytes, counter+4+totalContentLen, counter+totalLen);
-			}
-			
-			//if it's a COMMIT message, try re-save the file if it's not already saved
-			if (decision.equals("COMMIT")) {
-				try {
-					File f = new File(collageName);
-					if (!f.exists()) {
-						FileOutputStream outputStream = new FileOutputStream(collageName);
-						outputStream.write(img);
-						outputStream.close();
-					}
-				} catch (IOException e) {
-					System.err.println("IOException");
+				String contentString = new String(contentBytes);
+				String[] contents = contentString.split(":");
+
+				//parse the log information
+				int refNum = Integer.parseInt(contents[0]);
+				String decision = contents[1];
+				String collageName = contents[2];
+
+				//if it's a COMMIT message, the collage may need to be re-saved later
+				if (decision.equals("COMMIT") && scheduled.add(collageName)) {
+					long imgOffset = counter + 4 + totalContentLen;
+					tasks.add(new ResaveTask(collageName, imgOffset, (int) (counter + totalLen - imgOffset)));
 				}
-			}
 
-			//recover the decisionMap
-			decisionMap.put(refNum, decision);
-			counter += totalLen;
+				//recover the decisionMap
+				decisionMap.put(refNum, decision);
+				counter += totalLen;
+			}
+			if (counter < fileLen) {
+				//cut off the torn record, otherwise the next record would be appended after it
+				System.err.println("doRecovery: truncated log record at " + counter);
+				raf.setLength(counter);
+				raf.close();
+				PL.fsync();
+			} else {
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.err.println("IOException");
 		}
 		
 		//to recover the cnt
@@ -395,19 +594,39 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 			}
 		}
 		cnt = m+1;
+		return tasks;
+	}
+
+	//the recovery code, second pass. Re-save the collages in parallel, without blocking the messages
+	public static void resaveCollages(List<ResaveTask> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		resaveTotal.set(tasks.size());
+		int workers = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		for (ResaveTask task : tasks) {
+			pool.submit(task);
+		}
+		//no more tasks, let the workers exit once they are done
+		pool.shutdown();
 	}
 
 	public static void main ( String args[] ) throws Exception {
 		if (args.length != 1) throw new Exception("Need 1 arg: <port>");
 		Server srv = new Server();
 		PL = new ProjectLib( Integer.parseInt(args[0]), srv, srv );
+		tracer = Tracer.fromProperties("Server");
 		voteMap = new ConcurrentHashMap<>();
 		decisionMap = new ConcurrentHashMap<>();
+		chunkAckMap = new ConcurrentHashMap<>();
 
-		//do recovery, while blocking all the messages from UserNodes
-		doRecovery();
-		//release the flag
+		//recover the decisions, while blocking all the messages from UserNodes
+		List<ResaveTask> tasks = doRecovery();
+		//release the flag, the decisions are enough to answer the UserNodes
 		inRecovery = false;
+		//re-save the missing collages in the background
+		resaveCollages(tasks);
 
 		//begin listening to the UserNodes
 		while (true) {
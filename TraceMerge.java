@@ -0,0 +1,213 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Comparator;
+
+/*
+ * Offline tool that merges the trace files written by Tracer on the Server and the UserNodes
+ * into one timeline per collage, and lists where the time went.
+ *
+ * 	usage: java TraceMerge [-top N] trace-Server.jsonl trace-a.jsonl trace-b.jsonl ...
+ *
+ * prints the N slowest collages with all their events, then the slowest phases (the time between
+ * two consecutive events of the same node for the same collage), then the slowest UserNodes
+ * (the time between the Server sending PREPARE to them and receiving their vote).
+ * If a node's tracer had to drop events, that is printed first, since its timelines are incomplete.
+ */
+public class TraceMerge {
+
+	//one line of a trace file
+	public static class Entry {
+		public final long ts;
+		public final String node;
+		public final int refNum;
+		public final String event;
+		public final String arg;
+
+		public Entry(long ts, String node, int refNum, String event, String arg) {
+			this.ts = ts;
+			this.node = node;
+			this.refNum = refNum;
+			this.event = event;
+			this.arg = arg;
+		}
+	}
+
+	//count, total and worst of a set of durations, in microseconds
+	public static class Stat {
+		public long count = 0;
+		public long total = 0;
+		public long max = 0;
+		public int maxRef = -1;
+
+		public void add(long d, int refNum) {
+			count++;
+			total += d;
+			if (d > max) {
+				max = d;
+				maxRef = refNum;
+			}
+		}
+	}
+
+	//get the value of a field, as written by Tracer.writeRecord
+	public static String field(String line, String name) {
+		String key = "\"" + name + "\":";
+		int i = line.indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		i += key.length();
+		if (i >= line.length()) {
+			//the line was cut off right after the key, e.g. the node was killed while writing it
+			return null;
+		}
+		if (line.charAt(i) != '"') {
+			int j = i;
+			while (j < line.length() && line.charAt(j) != ',' && line.charAt(j) != '}') {
+				j++;
+			}
+			return line.substring(i, j);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int j = i + 1; j < line.length(); j++) {
+			char c = line.charAt(j);
+			if (c == '\\' && j + 1 < line.length()) {
+				sb.append(line.charAt(++j));
+			} else if (c == '"') {
+				break;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	//returns null if the line is malformed or cut off
+	public static Entry parse(String line) {
+		String ts = field(line, "ts");
+		String node = field(line, "node");
+		String ref = field(line, "ref");
+		String ev = field(line, "ev");
+		if (ts == null || node == null || ref == null || ev == null) {
+			return null;
+		}
+		try {
+			return new Entry(Long.parseLong(ts), node, Integer.parseInt(ref), ev, field(line, "arg"));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public static String ms(long micros) {
+		return String.format("%.3fms", micros / 1000.0);
+	}
+
+	public static void printStats(String title, Map<String, Stat> stats, int top) {
+		List<Map.Entry<String, Stat>> sorted = new ArrayList<>(stats.entrySet());
+		sorted.sort(Comparator.comparingLong((Map.Entry<String, Stat> e) -> e.getValue().max).reversed());
+		System.out.println(title);
+		for (int i = 0; i < Math.min(top, sorted.size()); i++) {
+			Stat s = sorted.get(i).getValue();
+			System.out.println("  " + sorted.get(i).getKey() + "  max " + ms(s.max) + " (ref " + s.maxRef + ")"
+				+ "  avg " + ms(s.total / s.count) + "  n=" + s.count);
+		}
+	}
+
+	public static void main ( String args[] ) throws Exception {
+		int top = 10;
+		List<String> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-top") && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (files.isEmpty()) throw new Exception("Need args: [-top N] <trace file>...");
+
+		//group the events of all the nodes by reference number
+		Map<Integer, List<Entry>> timelines = new TreeMap<>();
+		//maps the node to the total number of events its tracer dropped
+		Map<String, Long> dropped = new TreeMap<>();
+		for (String path : files) {
+			try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					Entry e = parse(line);
+					if (e == null) {
+						System.err.println("TraceMerge: skipping malformed line in " + path);
+						continue;
+					}
+					if (e.event.equals("DROPPED")) {
+						//the count is a running total, the last one is what matters
+						try {
+							dropped.merge(e.node, Long.parseLong(e.arg), Math::max);
+						} catch (NumberFormatException ex) {
+							System.err.println("TraceMerge: skipping malformed line in " + path);
+						}
+						continue;
+					}
+					timelines.computeIfAbsent(e.refNum, k -> new ArrayList<>()).add(e);
+				}
+			} catch (IOException e) {
+				System.err.println("TraceMerge: can't read " + path);
+			}
+		}
+
+		Map<String, Stat> phases = new HashMap<>();
+		Map<String, Stat> nodes = new HashMap<>();
+		Map<Integer, Long> spans = new HashMap<>();
+		for (Map.Entry<Integer, List<Entry>> t : timelines.entrySet()) {
+			int refNum = t.getKey();
+			List<Entry> events = t.getValue();
+			events.sort(Comparator.comparingLong(e -> e.ts));
+			spans.put(refNum, events.get(events.size() - 1).ts - events.get(0).ts);
+
+			//time between consecutive events of the same node
+			Map<String, Entry> last = new HashMap<>();
+			//when PREPARE was sent to each UserNode
+			Map<String, Long> sent = new HashMap<>();
+			for (Entry e : events) {
+				Entry prev = last.put(e.node, e);
+				if (prev != null) {
+					String phase = (e.node.equals("Server") ? "Server" : "UserNode") + " " + prev.event + " -> " + e.event;
+					phases.computeIfAbsent(phase, k -> new Stat()).add(e.ts - prev.ts, refNum);
+				}
+				if (e.event.equals("PREPARE_SENT") && e.arg != null) {
+					sent.put(e.arg, e.ts);
+				} else if (e.event.equals("VOTE_RECEIVED") && e.arg != null && sent.containsKey(e.arg)) {
+					nodes.computeIfAbsent(e.arg, k -> new Stat()).add(e.ts - sent.get(e.arg), refNum);
+				}
+			}
+		}
+
+		if (!dropped.isEmpty()) {
+			System.out.println("WARNING: events were dropped, some timelines are incomplete:");
+			for (Map.Entry<String, Long> d : dropped.entrySet()) {
+				System.out.println("  " + d.getKey() + " dropped " + d.getValue() + " events");
+			}
+		}
+
+		//the slowest collages, with their whole timeline
+		List<Integer> refs = new ArrayList<>(spans.keySet());
+		refs.sort(Comparator.comparingLong((Integer r) -> spans.get(r)).reversed());
+		System.out.println("slowest collages:");
+		for (int i = 0; i < Math.min(top, refs.size()); i++) {
+			int refNum = refs.get(i);
+			List<Entry> events = timelines.get(refNum);
+			long start = events.get(0).ts;
+			System.out.println("ref " + refNum + "  " + ms(spans.get(refNum)));
+			for (Entry e : events) {
+				System.out.println("  +" + ms(e.ts - start) + "  " + e.node + "  " + e.event + (e.arg == null ? "" : " " + e.arg));
+			}
+		}
+		printStats("slowest phases:", phases, top);
+		printStats("slowest UserNodes (PREPARE sent -> vote received):", nodes, top);
+	}
+}
@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Records timestamped events keyed by the reference number of a collage, so that the Server's view
+ * of a collage can later be lined up with what every UserNode did for it (see TraceMerge).
+ *
+ * Enabled by -Dtrace.dir=<dir>, every process then writes <dir>/trace-<nodeId>.jsonl, one event per line:
+ *
+ * 		{"ts":1700000000123456,"node":"Server","ref":14,"ev":"PREPARE_SENT","arg":"a"}
+ *
+ * 	where ts is the wall clock time in microseconds.
+ *
+ * record() never blocks and never touches the disk: events go into a fixed size ring buffer,
+ * and a background thread writes them out. If the writer falls a whole buffer behind, the oldest
+ * events are dropped and counted instead. Whenever the count grows, it is written out as
+ *
+ * 		{"ts":1700000000123456,"node":"Server","ref":-1,"ev":"DROPPED","arg":"42"}
+ *
+ * 	where arg is the total number of events dropped so far by this node.
+ */
+public class Tracer {
+	public static final int capacity = 1 << 16;
+	public static final long flushInterval = 200;
+
+	public enum Event {
+		//Server side
+		COLLAGE_START, PREPARE_SENT, VOTE_RECEIVED, VOTES_COLLECTED, VOTE_TIMEOUT, DECISION_LOGGED, DECISION_SENT,
+		//UserNode side
+		PREPARE_RECEIVED, LOCKED, IMAGE_RECEIVED, ASK_USER, USER_ANSWERED, VOTED, DELETED, UNLOCKED, PEER_DECISION,
+		//written by the tracer itself, not about any collage
+		DROPPED
+	}
+
+	//one recorded event, seq tells the flusher which lap of the ring buffer it belongs to
+	public static class Record {
+		public final long seq;
+		public final long ts;
+		public final int refNum;
+		public final Event event;
+		public final String arg;
+
+		public Record(long seq, long ts, int refNum, Event event, String arg) {
+			this.seq = seq;
+			this.ts = ts;
+			this.refNum = refNum;
+			this.event = event;
+			this.arg = arg;
+		}
+	}
+
+	public final String nodeId;
+	public final boolean enabled;
+	//how many events have been claimed, and how many the flusher has consumed
+	public final AtomicLong head;
+	public long tail;
+	//how many events were overwritten before the flusher got to them
+	public final AtomicLong dropped;
+	//the drop count last written to the file
+	public long droppedReported;
+	public final AtomicReferenceArray<Record> ring;
+	//used to turn System.nanoTime() into wall clock microseconds
+	public final long baseMicros;
+	public final long baseNanos;
+	public BufferedWriter out;
+
+	//constructor, a null path gives a tracer that records nothing
+	public Tracer( String id, String path ) {
+		nodeId = id;
+		head = new AtomicLong(0);
+		tail = 0;
+		dropped = new AtomicLong(0);
+		droppedReported = 0;
+		ring = new AtomicReferenceArray<>(path == null ? 1 : capacity);
+		baseMicros = System.currentTimeMillis() * 1000;
+		baseNanos = System.nanoTime();
+
+		boolean opened = false;
+		if (path != null) {
+			try {
+				out = new BufferedWriter(new FileWriter(path, true));
+				opened = true;
+			} catch (IOException e) {
+				System.err.println("Tracer: can't open " + path + ", tracing disabled");
+			}
+		}
+		enabled = opened;
+		if (enabled) {
+			Thread flusher = new Thread(() -> {
+				while (true) {
+					try {
+						Thread.sleep(flushInterval);
+					} catch (InterruptedException e) {
+						break;
+					}
+					flush();
+				}
+			});
+			flusher.setDaemon(true);
+			flusher.start();
+			//write out whatever is left when the process exits normally
+			Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+		}
+	}
+
+	//the tracer for a node, as configured by -Dtrace.dir
+	public static Tracer fromProperties( String id ) {
+		String dir = System.getProperty("trace.dir");
+		if (dir == null) {
+			return new Tracer(id, null);
+		}
+		return new Tracer(id, new File(dir, "trace-" + id + ".jsonl").getPath());
+	}
+
+	//whether a file in the working directory is a trace file, not something else of the node
+	public static boolean isTraceFile( String filename ) {
+		return filename.startsWith("trace-") && filename.endsWith(".jsonl");
+	}
+
+	public void record(int refNum, Event event) {
+		record(refNum, event, null);
+	}
+
+	public void record(int refNum, Event event, String arg) {
+		if (!enabled) {
+			return;
+		}
+		long ts = now();
+		long seq = head.getAndIncrement();
+		ring.lazySet((int) (seq & (capacity - 1)), new Record(seq, ts, refNum, event, arg));
+	}
+
+	//the wall clock time in microseconds
+	public long now() {
+		return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+	}
+
+	//write all the published events to the file, only called by one thread at a time
+	public synchronized void flush() {
+		if (!enabled) {
+			return;
+		}
+		try {
+			long end = head.get();
+			if (end - tail > capacity) {
+				//the writers lapped the flusher, those events are gone
+				dropped.addAndGet(end - capacity - tail);
+				tail = end - capacity;
+			}
+			while (tail < end) {
+				Record r = ring.get((int) (tail & (capacity - 1)));
+				if (r == null || r.seq < tail) {
+					//claimed but not published yet, pick it up next time
+					break;
+				}
+				if (r.seq > tail) {
+					//overwritten by a later lap
+					dropped.incrementAndGet();
+				} else {
+					writeRecord(r);
+				}
+				tail++;
+			}
+			long d = dropped.get();
+			if (d != droppedReported) {
+				//let the reader know the timelines around here are missing events
+				droppedReported = d;
+				writeRecord(new Record(-1, now(), -1, Event.DROPPED, Long.toString(d)));
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("IOException");
+		}
+	}
+
+	public void writeRecord(Record r) throws IOException {
+		StringBuilder sb = new StringBuilder(96);
+		sb.append("{\"ts\":").append(r.ts);
+		sb.append(",\"node\":\"").append(escape(nodeId)).append('"');
+		sb.append(",\"ref\":").append(r.refNum);
+		sb.append(",\"ev\":\"").append(r.event.name()).append('"');
+		if (r.arg != null) {
+			sb.append(",\"arg\":\"").append(escape(r.arg)).append('"');
+		}
+		sb.append("}\n");
+		out.write(sb.toString());
+	}
+
+	public static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -10,7 +10,15 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Collection;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.StandardWatchEventKinds;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class UserNode implements ProjectLib.MessageHandling {
 	public final String myId;
@@ -20,12 +28,118 @@ public class UserNode implements ProjectLib.MessageHandling {
 	public Object lock;
 	public String logFilePath;
 	//a flag that indicates the UserNode is currently in recovery. If set, will block all messages 
-	public boolean inRecovery;
+	public volatile boolean inRecovery;
+	//at most this many decisions are remembered for answering the other participants
+	public static final int maxOutcomes = 4096;
+	//maps the reference number to the decision this UserNode has already logged for it, "COMMIT" or "ABORT"
+	public ConcurrentHashMap<Integer, String> outcomeMap;
+	//the reference numbers in outcomeMap, oldest first
+	public ConcurrentLinkedQueue<Integer> outcomeOrder;
+	//the reference numbers the Server has answered INPROGRESS for since the last check
+	public Set<Integer> answeredRefs;
+	//maps the reference number this UserNode is still waiting on to the other participants of the collage
+	public ConcurrentHashMap<Integer, String[]> peersMap;
+	//the files this UserNode owns, so PREPARE doesn't need to go to the disk to check them
+	public Set<String> ownedFiles;
+	//records what happens to every collage, does nothing unless -Dtrace.dir is set
+	public Tracer tracer;
+	//how long an image may go without a new chunk before it's dropped, the Server gives up on the transfer by then
+	public static final long imageTimeout = 6000;
+	//maps the reference number to the image being received for it
+	public ConcurrentHashMap<Integer, ImageAssembly> imageMap;
+
+	/*
+	 * The image of a collage, put together from the IMGCHUNK messages directly into one buffer.
+	 * The chunks may come before or after the PREPARE, the user is asked once both are there.
+	 */
+	public static class ImageAssembly {
+		public final byte[] img;
+		//the indices of the chunks received so far, and how many bytes they hold
+		public final Set<Integer> chunks;
+		public int received;
+		//chunks 0 to prefix-1 have all been received
+		public int prefix;
+		//the files involved, set once they are locked
+		public String[] filenames;
+		public boolean asked;
+		//when a message for it last arrived, to drop it if the collage stops making progress
+		public long activeTime;
+
+		public ImageAssembly(int imgLen) {
+			img = new byte[imgLen];
+			chunks = new HashSet<>();
+			received = 0;
+			prefix = 0;
+			filenames = null;
+			asked = false;
+			activeTime = System.currentTimeMillis();
+		}
+
+		/*
+		 * copy a chunk from the message body into the image, duplicates are ignored
+		 * 
+		 * 	returns: true if this chunk completed the image
+		 */
+		public synchronized boolean addChunk(int index, byte[] body, int from, int offset, int len) {
+			if (offset < 0 || offset + len > img.length || !chunks.add(index)) {
+				return false;
+			}
+			System.arraycopy(body, from, img, offset, len);
+			received += len;
+			activeTime = System.currentTimeMillis();
+			while (chunks.contains(prefix)) {
+				prefix++;
+			}
+			return received == img.length;
+		}
+
+		/*
+		 * what stays in imageMap once the user has been asked, until the decision comes: no image,
+		 * it only keeps acknowledging all the chunks, so late or resent ones don't start a new image
+		 */
+		public static ImageAssembly askedMarker(int ackCount) {
+			ImageAssembly marker = new ImageAssembly(0);
+			marker.prefix = ackCount;
+			marker.asked = true;
+			return marker;
+		}
+
+		//how many chunks have been received without a gap, this is what gets acknowledged
+		public synchronized int ackCount() {
+			return prefix;
+		}
+
+		public synchronized void setFilenames(String[] f) {
+			filenames = f;
+			activeTime = System.currentTimeMillis();
+		}
+
+		//whether nothing has happened to it for longer than imageTimeout
+		public synchronized boolean isIdle(long noW) {
+			return noW - activeTime > imageTimeout;
+		}
+
+		//the files to ask the user about, if the image is complete and the files are locked. Only ever returned once
+		public synchronized String[] readyToAsk() {
+			if (asked || filenames == null || received < img.length) {
+				return null;
+			}
+			asked = true;
+			return filenames;
+		}
+	}
 
 	//constructor
 	public UserNode( String id ) {
 		myId = id;
 		resourceMap = new ConcurrentHashMap<>();
+		outcomeMap = new ConcurrentHashMap<>();
+		outcomeOrder = new ConcurrentLinkedQueue<>();
+		answeredRefs = ConcurrentHashMap.newKeySet();
+		peersMap = new ConcurrentHashMap<>();
+		ownedFiles = ConcurrentHashMap.newKeySet();
+		tracer = new Tracer(id, null);
+		imageMap = new ConcurrentHashMap<>();
 		lock = new Object();
 		logFilePath = "log.txt";
 		inRecovery = true;
@@ -38,15 +152,62 @@ public class UserNode implements ProjectLib.MessageHandling {
 	 * 		ASK,14, 
 	 */
 	public ProjectLib.Message getMsg(String type, int refNum, String answer) {
+		return getMsg("Server", type, refNum, answer);
+	}
+
+	/*
+	 * messages between UserNodes are of the form:
+	 * 		QUERY,14, 
+	 * 		DECISION,14,COMMIT
+	 * 		DECISION,14,ABORT
+	 * 		DECISION,14,UNKNOWN
+	 */
+	public ProjectLib.Message getMsg(String dest, String type, int refNum, String answer) {
 		byte[] bstream = (type+","+refNum+","+answer).getBytes();
-		ProjectLib.Message msg = new ProjectLib.Message( "Server", bstream );
+		ProjectLib.Message msg = new ProjectLib.Message( dest, bstream );
 		return msg;
 	}
 
+	//append a record to the log, and make sure it's on the disk before going on
+	public void writeLog(String logMessage) {
+		try {
+			byte[] logBytes = logMessage.getBytes();
+			FileOutputStream fos = new FileOutputStream(logFilePath, true);
+			fos.write(logBytes);
+			fos.close();
+			PL.fsync();
+		} catch (IOException e) {
+			System.err.println("IOException");
+		}
+	}
+
+	//ask the user about a collage once its files are locked and its image has arrived, then vote
+	public void askIfReady(int refNum, ImageAssembly assembly) {
+		String[] filenames = assembly.readyToAsk();
+		if (filenames == null) {
+			return;
+		}
+		//the image is no longer needed once the user has seen it, unless the decision already removed it
+		imageMap.replace(refNum, assembly, ImageAssembly.askedMarker(assembly.ackCount()));
+
+		//ask the user its opinion
+		tracer.record(refNum, Tracer.Event.ASK_USER);
+		boolean result = PL.askUser(assembly.img, filenames);
+		tracer.record(refNum, Tracer.Event.USER_ANSWERED);
+		//if NO, deny it and tell the Server
+		if (!result) {
+			denY(refNum);
+			return;
+		}
+		//otherwise accept if and tell the Server
+		accepT(refNum);
+	}
+
 	//accept a certain collage, and send the responses to the Server
 	public void accepT(int refNum) {
 		ProjectLib.Message msg = getMsg("RESPONSE", refNum, "YES");
 		PL.sendMessage( msg );
+		tracer.record(refNum, Tracer.Event.VOTED, "YES");
 	}
 
 	//ask the server the result of a certain reference number
@@ -55,36 +216,129 @@ public class UserNode implements ProjectLib.MessageHandling {
 		PL.sendMessage( msg );
 	}
 
+	/*
+	 * remember the decision for a reference number, forgetting the oldest ones past maxOutcomes.
+	 * a forgotten decision is answered UNKNOWN, which is always safe.
+	 */
+	public void putOutcome(int refNum, String decision) {
+		if (outcomeMap.put(refNum, decision) == null) {
+			outcomeOrder.add(refNum);
+		}
+		while (outcomeMap.size() > maxOutcomes) {
+			Integer oldest = outcomeOrder.poll();
+			if (oldest == null) {
+				break;
+			}
+			outcomeMap.remove(oldest);
+		}
+	}
+
+	//forget the decision for a reference number, the Server may reuse it for a new collage after a failure
+	public void clearOutcome(int refNum) {
+		if (outcomeMap.remove(refNum) != null) {
+			outcomeOrder.remove(Integer.valueOf(refNum));
+		}
+	}
+
+	//ask the other participants the result of a certain reference number
+	public void queryPeers(int refNum) {
+		String[] peers = peersMap.get(refNum);
+		if (peers == null) {
+			return;
+		}
+		for (String peer : peers) {
+			ProjectLib.Message msg = getMsg(peer, "QUERY", refNum, " ");
+			PL.sendMessage( msg );
+		}
+	}
+
 	//deny a certain collage, and send the responses to the Server
 	public void denY(int refNum) {
 		//and release all the resources occupied by the proposal
 		for (String key : resourceMap.keySet()) {
 			if (resourceMap.getOrDefault(key,-1) == refNum) {	
-				try {
-					//before taking any action, write to the log
-					String logMessage = key+":"+"UNLOCK"+":"+refNum+",";
-					byte[] logBytes = logMessage.getBytes();
-					FileOutputStream fos = new FileOutputStream(logFilePath, true);
-					fos.write(logBytes);
-					fos.close();
-					PL.fsync();
-				} catch (IOException e) {
-					System.err.println("IOException");
-				}
+				//before taking any action, write to the log
+				writeLog(key+":"+"UNLOCK"+":"+refNum+",");
 
 				//release the resource
 				resourceMap.remove(key);
 			}
 		}
 
+		//remember the NO vote, so the other participants can learn from it that the collage is aborted
+		writeLog("*:"+"NO"+":"+refNum+",");
+		putOutcome(refNum, "ABORT");
+		peersMap.remove(refNum);
+		imageMap.remove(refNum);
+
 		//send the response to the server
 		ProjectLib.Message msg = getMsg("RESPONSE", refNum, "NO");
 		PL.sendMessage( msg );
+		tracer.record(refNum, Tracer.Event.VOTED, "NO");
+	}
+
+	//commit a collage, delete all the files involved
+	public void commiT(int refNum) {
+		//need to synchronize in case the Server and a peer both tell the decision
+		boolean released = false;
+		synchronized (lock) {
+			for (String key : resourceMap.keySet()) {
+				//find all the resources associated with the reference number and delete it
+				if (resourceMap.getOrDefault(key,-1) == refNum) {
+					released = true;
+					//before taking any action, first write the log
+					writeLog(key+":"+"DELETE"+":"+refNum+",");
+
+					//delete the file
+					ownedFiles.remove(key);
+					File file = new File(key);
+					file.delete();
+					resourceMap.remove(key);
+				}
+			}
+			putOutcome(refNum, "COMMIT");
+			peersMap.remove(refNum);
+			imageMap.remove(refNum);
+		}
+		//the decision may come more than once, only trace the time it actually deleted something
+		if (released) {
+			tracer.record(refNum, Tracer.Event.DELETED);
+		}
+	}
+
+	//abort a collage, release all the files involved
+	public void aborT(int refNum) {
+		//need to synchronize in case the Server and a peer both tell the decision
+		boolean released = false;
+		synchronized (lock) {
+			for (String key : resourceMap.keySet()) {
+				//find all the resources associated with the reference number and release it
+				if (resourceMap.getOrDefault(key,-1) == refNum) {
+					released = true;
+					//before taking any action, first write the log
+					writeLog(key+":"+"UNLOCK"+":"+refNum+",");
+
+					//release the recource
+					resourceMap.remove(key);
+				}
+			}
+			putOutcome(refNum, "ABORT");
+			peersMap.remove(refNum);
+			imageMap.remove(refNum);
+		}
+		//the decision may come more than once, only trace the time it actually released something
+		if (released) {
+			tracer.record(refNum, Tracer.Event.UNLOCKED);
+		}
 	}
 
 	/*
 	 * recover the resourceMap, pairs are of the form
 	 * 		filename1:LOCK:2
+	 * 		filename1:LOCK:2:peer1;peer2
+	 * 		*:NO:2
+	 * 
+	 * 	where the first LOCK of a reference number also carries the other participants of the collage
 	 */
 	public void recoverMap(String[] fileRefpairs) {
 		//loop through all the pairs
@@ -96,6 +350,12 @@ public class UserNode implements ProjectLib.MessageHandling {
 			int refnum = Integer.parseInt(p[2]);
 			
 			if (status.equals("LOCK")) {
+				//a new collage for this reference number, whatever was decided for it before doesn't hold anymore
+				clearOutcome(refnum);
+				if (p.length > 3) {
+					//the other participants of the collage
+					peersMap.put(refnum, p[3].split(";"));
+				}
 				//put the resource in lock
 				resourceMap.put(filename, refnum);
 			} else if (status.equals("UNLOCK")) {
@@ -107,21 +367,94 @@ public class UserNode implements ProjectLib.MessageHandling {
 				}
 				//release the recourse
 				resourceMap.remove(filename);
+				putOutcome(refnum, "ABORT");
 			} else if (status.equals("DELETE")) {
-				File f = new File(filename);
 				//check if the file is already deleted
-				if (f.exists()) {
+				if (ownedFiles.remove(filename)) {
 					//if not, delete it now
+					File f = new File(filename);
 					f.delete();
 				}
+				putOutcome(refnum, "COMMIT");
+			} else if (status.equals("NO")) {
+				//voted NO, so the collage can only be aborted
+				putOutcome(refnum, "ABORT");
 			} else {
 				System.err.println("recoverMap: unknown log message");
 			}
 		}
 	}
 
+	//build the catalog of the files this UserNode owns, with one scan of the working directory
+	public void buildCatalog() {
+		/*
+		 * commiT deletes files under the lock, so scanning under it too makes sure a file 
+		 * can't be listed here and then deleted before it goes back into the catalog.
+		 * only done at startup and when the watcher loses events, so it's not on the PREPARE path
+		 */
+		synchronized (lock) {
+			File[] files = new File(".").listFiles();
+			if (files == null) {
+				System.err.println("buildCatalog: can't list the working directory");
+				return;
+			}
+			Set<String> scanned = new HashSet<>();
+			for (File f : files) {
+				if (isCatalogFile(f)) {
+					scanned.add(f.getName());
+				}
+			}
+			//files gone since the last scan have to be dropped as well
+			ownedFiles.retainAll(scanned);
+			ownedFiles.addAll(scanned);
+		}
+	}
+
+	//only regular files count, not the log or the trace of this UserNode
+	public boolean isCatalogFile(File f) {
+		String filename = f.getName();
+		return f.isFile() && !filename.equals(logFilePath) && !Tracer.isTraceFile(filename);
+	}
+
+	//keep the catalog in sync with files added or removed outside of this UserNode
+	public void watchCatalog() {
+		Thread watcher = new Thread(() -> {
+			try {
+				WatchService ws = FileSystems.getDefault().newWatchService();
+				Path dir = Paths.get(".");
+				dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+				while (true) {
+					WatchKey key = ws.take();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							//lost some events, scan the directory again
+							buildCatalog();
+							continue;
+						}
+						String filename = event.context().toString();
+						if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+							if (isCatalogFile(dir.resolve(filename).toFile())) {
+								ownedFiles.add(filename);
+							}
+						} else {
+							ownedFiles.remove(filename);
+						}
+					}
+					key.reset();
+				}
+			} catch (IOException | InterruptedException e) {
+				System.err.println("watchCatalog: stopped watching the working directory");
+			}
+		});
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
 	//the recovery code
 	public void userRecover() {
+		//the catalog has to be there before replaying the DELETEs
+		buildCatalog();
+
 		File file = new File(logFilePath);
 		if (!file.exists()) {
 			//no need to recover, just create the log.txt file
@@ -167,6 +500,9 @@ public class UserNode implements ProjectLib.MessageHandling {
 		String[] fileRefpairs = infoString.split(",");
 		recoverMap(fileRefpairs);
 
+		//only the reference numbers still holding a resource are waiting on a decision
+		peersMap.keySet().retainAll(getAllRefs());
+
 		//ask the decision for every reference number on which there is a resource locked
 		Collection<Integer> values = resourceMap.values();
 		Set<Integer> keys = new HashSet<>(values);
@@ -182,6 +518,7 @@ public class UserNode implements ProjectLib.MessageHandling {
 	 * 		RESPONSE,14,YES
 	 * 		RESPONSE,14,NO
 	 * 		ASK,14, 
+	 * 		CHUNKACK,14,3
 	 */
 	public boolean deliverMessage( ProjectLib.Message msg ) {
 		while (inRecovery) {
@@ -190,8 +527,7 @@ public class UserNode implements ProjectLib.MessageHandling {
 		String source = msg.addr;
 		
 		if (!source.equals("Server")) {
-			System.err.println("deliverMessage: not from Server, forward to PL.getMessage()");
-			return false;
+			return deliverPeerMessage(msg);
 		}
 
 		//parse the message
@@ -202,7 +538,6 @@ public class UserNode implements ProjectLib.MessageHandling {
 		
 		String content = new String(contentBytes);
 		content = content.substring(0, content.length() - 1);
-		byte[] img = Arrays.copyOfRange(bytes, totalContentLen, bytes.length); //
 
 		String[] info = content.split(",");
 		String type = info[0];
@@ -214,13 +549,27 @@ public class UserNode implements ProjectLib.MessageHandling {
 			//find all the files involved in this collage
 			filenamess = filenamess.substring(0, filenamess.length() - 1);
 			String[] filenames = filenamess.split(":");
+			tracer.record(refNum, Tracer.Event.PREPARE_RECEIVED);
 			
 			//need to synchronize in case of concurrent requests
 			synchronized (lock) {
+				//a new collage for this reference number, whatever was decided for it before doesn't hold anymore
+				clearOutcome(refNum);
+
+				//the other participants, so they can be asked if the Server can't be reached
+				StringBuilder peers = new StringBuilder();
+				if (info.length > 3) {
+					for (String participant : info[3].split(":")) {
+						if (!participant.isEmpty() && !participant.equals(myId)) {
+							peers.append(peers.length() == 0 ? "" : ";").append(participant);
+						}
+					}
+				}
+
+				boolean first = true;
 				for (String filename : filenames) {
-					File file = new File(filename);
 					//if the UserNode doesn't won the file
-					if (!file.exists()) {
+					if (!ownedFiles.contains(filename)) {
 						System.err.println("deliverMessage: file doesn't exist");
 						denY(refNum);
 						return true;
@@ -234,80 +583,62 @@ public class UserNode implements ProjectLib.MessageHandling {
 
 					//otherwise, ask the user if it's ok
 
-					//before taking any action, first write the log
-					try {
-						String logMessage = filename+":"+"LOCK"+":"+refNum+",";
-						byte[] logBytes = logMessage.getBytes();
-						FileOutputStream fos = new FileOutputStream(logFilePath, true);
-						fos.write(logBytes);
-						fos.close();
-						PL.fsync();
-					} catch (IOException e) {
-						System.err.println("IOException");
+					//before taking any action, first write the log, the first LOCK also records the other participants
+					if (first && peers.length() > 0) {
+						writeLog(filename+":"+"LOCK"+":"+refNum+":"+peers+",");
+						peersMap.put(refNum, peers.toString().split(";"));
+					} else {
+						writeLog(filename+":"+"LOCK"+":"+refNum+",");
 					}
+					first = false;
 
 					//need to lock the resource in case the user accepts the collage
 					resourceMap.put(filename, refNum);
 				}	
 			}
-			//ask the user its opinion
-			boolean result = PL.askUser(img, filenames);
-			//if NO, deny it and tell the Server
-			if (!result) {
-				denY(refNum);
+			tracer.record(refNum, Tracer.Event.LOCKED);
+
+			//the image comes in IMGCHUNK messages, some of them may already be here
+			int imgLen = Integer.parseInt(info[4]);
+			ImageAssembly assembly = imageMap.computeIfAbsent(refNum, k -> new ImageAssembly(imgLen));
+			assembly.setFilenames(filenames);
+			askIfReady(refNum, assembly);
+			return true;
+		} else if (type.equals("IMGCHUNK")) {
+			int index = Integer.parseInt(info[2]);
+			int offset = Integer.parseInt(info[3]);
+			int imgLen = Integer.parseInt(info[4]);
+			/*
+			 * if the collage has already been decided or denied, the chunk is no longer needed.
+			 * the decision is put in outcomeMap before the image is removed from imageMap,
+			 * so checking it inside compute() can't bring back an image that was just dropped
+			 */
+			ImageAssembly assembly = imageMap.compute(refNum, (k, v) -> {
+				if (v != null) {
+					return v;
+				}
+				return outcomeMap.containsKey(refNum) ? null : new ImageAssembly(imgLen);
+			});
+			if (assembly == null) {
 				return true;
 			}
-			//otherwise accept if and tell the Server
-			accepT(refNum);
-			return true;
+			if (assembly.addChunk(index, bytes, totalContentLen, offset, bytes.length - totalContentLen)) {
+				tracer.record(refNum, Tracer.Event.IMAGE_RECEIVED);
+			}
+
+			//tell the Server how many chunks have arrived without a gap, so it can send more or resend the missing ones
+			ProjectLib.Message ack = getMsg("CHUNKACK", refNum, Integer.toString(assembly.ackCount()));
+			PL.sendMessage( ack );
+			askIfReady(refNum, assembly);
 		} else if (type.equals("COMMIT")) {
 			//need to delete the files involved
-			for (String key : resourceMap.keySet()) {
-				//find all the resources associated with the reference number and delete it
-				if (resourceMap.getOrDefault(key,-1) == refNum) {
-					//before taking any action, first write the log
-					try {
-						String logMessage = key+":"+"DELETE"+":"+refNum+",";
-						//System.err.println("UserNode "+myId+" deleted "+key+" due to commit "+refNum);
-						byte[] logBytes = logMessage.getBytes();
-						FileOutputStream fos = new FileOutputStream(logFilePath, true);
-						fos.write(logBytes);
-						fos.close();
-						PL.fsync();
-					} catch (IOException e) {
-						System.err.println("IOException");
-					}
-
-					//delete the file
-					File file = new File(key);
-					file.delete();
-					resourceMap.remove(key);
-				}
-			}
+			commiT(refNum);
 		} else if (type.equals("ABORT")) {
 			//need to release the resources
-			for (String key : resourceMap.keySet()) {
-				//find all the resources associated with the reference number and release it
-				if (resourceMap.getOrDefault(key,-1) == refNum) {
-					//before taking any action, first write the log
-					try {
-						String logMessage = key+":"+"UNLOCK"+":"+refNum+",";
-						//System.err.println("UserNode "+myId+" unlocked "+key+" due to abort "+refNum);
-						byte[] logBytes = logMessage.getBytes();
-						FileOutputStream fos = new FileOutputStream(logFilePath, true);
-						fos.write(logBytes);
-						fos.close();
-						PL.fsync();
-					} catch (IOException e) {
-						System.err.println("IOException");
-					}
-
-					//release the recource
-					resourceMap.remove(key);
-				}
-			}
+			aborT(refNum);
 		} else if (type.equals("INPROGRESS")) {
-			//do nothing, just wait.
+			//just wait, but the Server is there, so no need to ask the other participants
+			answeredRefs.add(refNum);
 		} else {
 			System.err.println("deliverMessage: unrecognizable, forward to PL.getMessage()");
 			return false;
@@ -315,6 +646,52 @@ public class UserNode implements ProjectLib.MessageHandling {
 		return true;
 	}
 	
+	/*
+	 * process messages from the other UserNodes, of the form:
+	 * 		QUERY,14, 
+	 * 		DECISION,14,COMMIT
+	 * 
+	 * a UserNode only answers with what it has logged itself: it DELETEd for the collage (COMMIT), 
+	 * or it voted NO / UNLOCKed for it (ABORT). Otherwise it's UNKNOWN, and the asker keeps waiting.
+	 */
+	public boolean deliverPeerMessage( ProjectLib.Message msg ) {
+		String source = msg.addr;
+		String[] info = new String(msg.body).split(",");
+		if (info.length < 3) {
+			System.err.println("deliverPeerMessage: unrecognizable, forward to PL.getMessage()");
+			return false;
+		}
+		int refNum = Integer.parseInt(info[1]);
+
+		if (info[0].equals("QUERY")) {
+			String decision = outcomeMap.getOrDefault(refNum, "UNKNOWN");
+			ProjectLib.Message reply = getMsg(source, "DECISION", refNum, decision);
+			PL.sendMessage(reply);
+		} else if (info[0].equals("DECISION")) {
+			//only act on it if still waiting on the decision
+			if (!peersMap.containsKey(refNum)) {
+				return true;
+			}
+			tracer.record(refNum, Tracer.Event.PEER_DECISION, source);
+			if (info[2].equals("COMMIT")) {
+				commiT(refNum);
+			} else if (info[2].equals("ABORT")) {
+				aborT(refNum);
+			}
+			//UNKNOWN, do nothing, just wait.
+		} else {
+			System.err.println("deliverPeerMessage: unrecognizable, forward to PL.getMessage()");
+			return false;
+		}
+		return true;
+	}
+
+	//drop the images that stopped making progress, e.g. because the PREPARE or ABORT was lost
+	public void expireImages() {
+		long noW = System.currentTimeMillis();
+		imageMap.values().removeIf(assembly -> assembly.isIdle(noW));
+	}
+
 	//get all the reference numbers on which there's a recourse locked
 	public Set<Integer> getAllRefs() {
 		Collection<Integer> values = resourceMap.values();
@@ -326,7 +703,13 @@ public class UserNode implements ProjectLib.MessageHandling {
 		if (args.length != 2) throw new Exception("Need 2 args: <port> <id>");
 		UserNode UN = new UserNode(args[1]);
 		UN.PL = new ProjectLib( Integer.parseInt(args[0]), args[1], UN );
+		UN.tracer = Tracer.fromProperties(args[1]);
 		
+		//optionally follow changes made to the working directory by someone else
+		if (Boolean.getBoolean("usernode.watchCatalog")) {
+			UN.watchCatalog();
+		}
+
 		//first recover the UserNode
 		UN.userRecover();
 		//release the flag
@@ -334,6 +717,8 @@ public class UserNode implements ProjectLib.MessageHandling {
 
 		//for all the resources that have been locked, the UserNode need to check-in with the Server to see the result, in case of network faliure
 		long curTime = System.currentTimeMillis();
+		//the reference numbers that were already waiting at the last check
+		Set<Integer> lastRefs = new HashSet<>();
 		while (true) {
 			//wait for messages to come
 
@@ -341,10 +726,18 @@ public class UserNode implements ProjectLib.MessageHandling {
 			long noW = System.currentTimeMillis();
 			if (noW - curTime > 2000) {
 				curTime = noW;
+				UN.expireImages();
 				Set<Integer> refs =  UN.getAllRefs();
+				UN.answeredRefs.retainAll(refs);
 				for (int ref : refs) {
+					//the Server didn't answer the ASK since the last check, ask the other participants as well
+					boolean answered = UN.answeredRefs.remove(ref);
+					if (lastRefs.contains(ref) && !answered) {
+						UN.queryPeers(ref);
+					}
 					UN.asK(ref);
 				}
+				lastRefs = refs;
 			}
 		}
 	}